@@ -2,6 +2,7 @@ package com.github.frizzy.eddnconsumer;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.zeromq.ZMQ;
 
 
 import javax.swing.JOptionPane;
@@ -9,8 +10,10 @@ import javax.swing.SwingUtilities;
 import java.io.File;
 import java.io.IOException;
 import java.time.LocalDateTime;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.Arrays;
+import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.Collections;
 
 /**
  * @author Frizzy
@@ -24,6 +27,36 @@ public class EDDNConsumer {
      */
     private static final Logger LOGGER = LogManager.getLogger ( );
 
+    /**
+     * System property holding a comma separated list of endpoints to receive from.
+     * Defaults to the EDDN relay.
+     */
+    public static final String RELAYS_PROPERTY = "eddn.relays";
+
+    /**
+     * System property holding the socket type used to receive, SUB or PULL.
+     * Workers consuming a PUSH fan-out should use PULL.
+     */
+    public static final String SOURCE_TYPE_PROPERTY = "eddn.source.type";
+
+    /**
+     * System property holding the local endpoint to re-publish responses on.
+     * Fan-out is disabled if not set.
+     */
+    public static final String FAN_OUT_PROPERTY = "eddn.fanout";
+
+    /**
+     * System property holding the fan-out socket type, PUB or PUSH.
+     */
+    public static final String FAN_OUT_TYPE_PROPERTY = "eddn.fanout.type";
+
+    /**
+     * System property that, when true and a fan-out endpoint is set, only relays
+     * responses to the workers. Registered sinks and the ResponseExporter are skipped,
+     * decode, filter and transform stages still run before the fan-out.
+     */
+    public static final String FAN_OUT_ONLY_PROPERTY = "eddn.fanout.only";
+
     /**
      * Exports responses to files.
      */
@@ -41,36 +74,87 @@ public class EDDNConsumer {
     private final EddnPump pump;
 
     /**
-     * The queue storing the EDDN responses.
+     * The Pipeline the EDDN responses are passed through.
      */
-    private final LinkedBlockingQueue< String > queue;
+    private final Pipeline pipeline;
 
     /**
-     *
+     * If EDDNConsumer only relays responses to workers without exporting them.
      */
-    private final AtomicBoolean active = new AtomicBoolean ( true );
+    private final boolean relayOnly;
 
     /**
      * Initializes EDDNConsumer.
      */
     private EDDNConsumer ( ) {
         ui = new EDDNUI ( );
-        File outLocation = selectLocation ( );
+        relayOnly = System.getProperty ( FAN_OUT_PROPERTY ) != null && Boolean.getBoolean ( FAN_OUT_ONLY_PROPERTY );
+
+        if ( !relayOnly ) {
+            File outLocation = selectLocation ( );
 
-        if ( outLocation != null ) {
-            exporter = new ResponseExporter ( outLocation );
+            if ( outLocation != null ) {
+                exporter = new ResponseExporter ( outLocation );
+            } else {
+                LOGGER.error ( "File outLocation is null." );
+                ui.showErrorDialog ( "File outLocation is null. \n EDDNConsumer will close." );
+                System.exit ( -1 );
+            }
         } else {
-            LOGGER.error ( "File outLocation is null." );
-            ui.showErrorDialog ( "File outLocation is null. \n EDDNConsumer will close." );
-            System.exit ( -1 );
+            LOGGER.info ( "Relay only, responses will not be exported locally." );
+
+            if ( !"PUSH".equalsIgnoreCase ( System.getProperty ( FAN_OUT_TYPE_PROPERTY, "PUB" ).trim ( ) ) ) {
+                LOGGER.warn ( "Relay only with a PUB fan-out gives no delivery guarantee. Responses without a connected " +
+                        "worker are dropped silently, use {}=PUSH to be warned about drops.", FAN_OUT_TYPE_PROPERTY );
+            }
         }
 
-        pump = new EddnPump ( );
-        queue = new LinkedBlockingQueue<> ( );
+        pump = createPump ( );
+        pipeline = createPipeline ( );
 
         startConsumer ( );
     }
 
+    /**
+     * Creates the EddnPump from the system properties. Without any of
+     * the properties set this is the same as connecting to the EDDN relay.
+     * Exits the application if the properties are invalid.
+     */
+    private EddnPump createPump ( ) {
+        try {
+            List<String> relays = Arrays.stream ( System.getProperty ( RELAYS_PROPERTY, EddnPump.RELAY ).split ( "," ) )
+                    .map ( String::trim )
+                    .filter ( relay -> !relay.isEmpty ( ) )
+                    .toList ( );
+            int sourceType = socketType ( SOURCE_TYPE_PROPERTY, "SUB" );
+
+            LOGGER.info ( "Relays: {}", relays );
+            return new EddnPump ( relays, sourceType );
+        } catch ( IllegalArgumentException e ) {
+            LOGGER.error ( "An error occurred creating the pump." , e );
+            ui.showErrorDialog ( "An error occurred creating the pump: " + e.getMessage ( ) + "\n Exiting application." );
+            System.exit ( -1 );
+            return null;
+        }
+    }
+
+    /**
+     * Returns the ZMQ socket type named by the system property. Throws an
+     * IllegalArgumentException if the name is not SUB, PULL, PUB or PUSH.
+     * Whether the type fits the socket is checked by the class using it.
+     */
+    private static int socketType ( final String property, final String defaultType ) throws IllegalArgumentException {
+        String value = System.getProperty ( property, defaultType ).trim ( ).toUpperCase ( );
+
+        return switch ( value ) {
+            case "SUB" -> ZMQ.SUB;
+            case "PULL" -> ZMQ.PULL;
+            case "PUB" -> ZMQ.PUB;
+            case "PUSH" -> ZMQ.PUSH;
+            default -> throw new IllegalArgumentException ( "Unknown socket type for " + property + ": " + value );
+        };
+    }
+
     /**
      *
      */
@@ -86,9 +170,96 @@ public class EDDNConsumer {
     }
 
     /**
-     * Starts the EDDNConsumer. A ResponseListener is created to listen
-     * for ResponseEvents from EddnPump and both the ResponseExporter and
-     * EddnPump threads are started.
+     * Creates the Pipeline from the stages registered with ServiceLoader.
+     * If no sink is registered, responses are exported with the ResponseExporter.
+     * Exits the application if a stage cannot be loaded or the stages are rejected.
+     */
+    private Pipeline createPipeline ( ) {
+        try {
+            return new Pipeline ( createStages ( ) );
+        } catch ( IllegalArgumentException | ServiceConfigurationError e ) {
+            LOGGER.error ( "An error occurred creating the pipeline." , e );
+            ui.showErrorDialog ( "An error occurred creating the pipeline: " + e.getMessage ( ) + "\n Exiting application." );
+            System.exit ( -1 );
+            return null;
+        }
+    }
+
+    /**
+     * Returns the stages registered with ServiceLoader, followed by the
+     * ResponseExporter sink if no sink is registered and the FanOutStage if a
+     * fan-out endpoint is set. When only relaying, registered sinks are dropped
+     * and the ResponseExporter is not added.
+     *
+     * @throws IllegalArgumentException Thrown if the fan-out properties are invalid.
+     */
+    private List<PipelineStage> createStages ( ) throws IllegalArgumentException {
+        List<PipelineStage> stages = Pipeline.discover ( );
+
+        if ( relayOnly ) {
+            stages.removeIf ( stage -> stage.getKind ( ) == PipelineStage.Kind.SINK );
+        } else if ( stages.stream ( ).noneMatch ( stage -> stage.getKind ( ) == PipelineStage.Kind.SINK ) ) {
+            stages.add ( new PipelineStage ( ) {
+                @Override
+                public Kind getKind ( ) {
+                    return Kind.SINK;
+                }
+
+                @Override
+                public String getName ( ) {
+                    return "ResponseExporter";
+                }
+
+                /*
+                 * ResponseExporter.export is synchronized and names files by System.nanoTime,
+                 * so the export order does not matter and the sink can follow parallel stages.
+                 */
+                @Override
+                public boolean isOrdered ( ) {
+                    return false;
+                }
+
+                @Override
+                public List<ResponseEvent> process ( List<ResponseEvent> batch ) {
+                    for ( ResponseEvent re : batch ) {
+                        try {
+                            String exportedPath = exporter.export ( re.getResponse ( ) );
+
+                            if ( !exportedPath.equals ( "No export" ) ) {//Double-checking to make sure the export was successful
+                                SwingUtilities.invokeLater ( ( ) -> {
+                                    ui.updateExported ( "Exported: " + exportedPath );
+                                } );
+                            } else {
+                                System.out.println ( "Returned No export" );
+                            }
+
+                        } catch ( IOException e ) {
+                            LOGGER.error ( "An error occurred exporting a response." , e );
+                            ui.showErrorDialog ( "An error occurred exporting a EDDN response." );
+                        }
+                    }
+
+                    if ( pipeline.isQueueEmpty ( ) ) {
+                        System.out.println ( "Queue is empty. You can stop the process." );
+                    }
+
+                    return Collections.emptyList ( );
+                }
+            } );
+        }
+
+        String fanOut = System.getProperty ( FAN_OUT_PROPERTY );
+        if ( fanOut != null ) {
+            stages.add ( new FanOutStage ( fanOut, socketType ( FAN_OUT_TYPE_PROPERTY, "PUB" ) ) );
+        }
+
+        return stages;
+    }
+
+    /**
+     * Starts the EDDNConsumer. A ResponseListener is created to update the UI
+     * for ResponseEvents from EddnPump, the Pipeline is registered to receive them
+     * and both the Pipeline and EddnPump threads are started.
      */
     private void startConsumer ( ) {
 
@@ -99,8 +270,6 @@ public class EDDNConsumer {
             public void responseReceived ( ResponseEvent re ) {
                 LOGGER.info ( "Received response" );
                 String response = re.getResponse ( );
-
-                queue.add ( response );
                 received++;
 
                 SwingUtilities.invokeLater ( ( ) -> {
@@ -110,59 +279,24 @@ public class EDDNConsumer {
             }
         };
         pump.addResponseListener ( listener );
+        pump.addResponseListener ( pipeline );
 
-        Thread thread = new Thread ( ( ) -> {
-            while ( active.get ( ) ) {
-                //LOGGER.info ( "Polled" );
-
-                try {
-                    final String polled = queue.take ( );
-                    try {
-                        String exportedPath = exporter.export ( polled );
-
-                        if ( !exportedPath.equals ( "No export" ) ) {//Double-checking to make sure the export was successful
-                            SwingUtilities.invokeLater ( ( ) -> {
-                                ui.updateExported ( "Exported: " + exportedPath );
-                            } );
-                        } else {
-                            System.out.println ( "Returned No export" );
-                        }
-
-                        if ( queue.isEmpty () ) {
-                            System.out.println ( "Queue is empty. You can stop the process." );
-                        }
-
-                    } catch ( IOException e ) {
-                        LOGGER.error ( "An error occurred exporting a response." , e );
-                        ui.showErrorDialog ( "An error occurred exporting a EDDN response." );
-                    }
-
-                } catch ( InterruptedException e ) {
-                    LOGGER.error ( "Exception" , e );
-                    ui.showErrorDialog ( "An InterruptedException occurred polling the queue. \n Exiting application." );
-                    System.exit ( -1 );
-                }
+        try {
+            pipeline.start ( );
+        } catch ( Exception e ) {
+            LOGGER.error ( "An error occurred starting the pipeline." , e );
+            ui.showErrorDialog ( "An error occurred starting the pipeline: " + e.getMessage ( ) + "\n Exiting application." );
+            System.exit ( -1 );
+        }
 
-//                final boolean active = pump.getActive ( );
-//
-//                LOGGER.info ( "Pump state: {}. Now finishing up the exporting process." , active );
-//                if ( queue.isEmpty ( ) && !active ) {
-//                    /*
-//                     * If pump is not active, that means YES_OPTION in the dialog
-//                     * was pressed. We need to exit as soon as the queue is empty and
-//                     * the exporter call finished.
-//                     */
-//                    LOGGER.info ( "Queue is empty and pump turned off, Exiting application." );
-//                    SwingUtilities.invokeLater ( ( ) -> {
-//                        ui.showDoneDialog ( exporter.getTotalExported ( ) );
-//                        System.exit ( 0 );
-//                    } );
-//                }
-            }
+        pump.setUncaughtExceptionHandler ( ( thread, e ) -> {
+            LOGGER.error ( "The pump stopped unexpectedly." , e );
+            SwingUtilities.invokeLater ( ( ) -> {
+                ui.showErrorDialog ( "The pump stopped unexpectedly: " + e.getMessage ( ) + "\n Exiting application." );
+                System.exit ( -1 );
+            } );
         } );
-
         pump.start ( );
-        thread.start ( );
 
 
         SwingUtilities.invokeLater ( ( ) -> {
@@ -170,12 +304,52 @@ public class EDDNConsumer {
 
             if ( option == JOptionPane.YES_OPTION ) {
                 pump.setActive ( false );
+                new Thread ( this::finish, "EDDNConsumer-finish" ).start ( );
             } else {
-                System.exit ( 0 );
+                // Stopping joins the segment threads, keep that off the EDT
+                pump.setActive ( false );
+                new Thread ( ( ) -> {
+                    stopPipeline ( );
+                    System.exit ( 0 );
+                }, "EDDNConsumer-stop" ).start ( );
+            }
+        } );
+    }
+
+    /**
+     * Waits for the pump to exit and the Pipeline to process every received response,
+     * then stops the Pipeline and shows the done dialog.
+     */
+    private void finish ( ) {
+        try {
+            pump.join ( );
+
+            while ( !pipeline.isIdle ( ) ) {
+                Thread.sleep ( 100 );
             }
+        } catch ( InterruptedException e ) {
+            LOGGER.error ( "Interrupted waiting for the pipeline to finish." , e );
+        }
+
+        LOGGER.info ( "Pump turned off and pipeline drained, exiting application." );
+        stopPipeline ( );
+
+        SwingUtilities.invokeLater ( ( ) -> {
+            ui.showDoneDialog ( exporter != null ? exporter.getTotalExported ( ) : 0 );
+            System.exit ( 0 );
         } );
     }
 
+    /**
+     * Stops the Pipeline and logs the metrics of every stage.
+     */
+    private void stopPipeline ( ) {
+        pipeline.stop ( );
+        for ( Pipeline.StageMetrics stageMetrics : pipeline.getMetrics ( ) ) {
+            LOGGER.info ( "Stage metrics: {}" , stageMetrics );
+        }
+    }
+
     /**
      * Starts EDDNConsumer.
      */
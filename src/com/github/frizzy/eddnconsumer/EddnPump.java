@@ -5,11 +5,16 @@ import org.apache.logging.log4j.Logger;
 import org.zeromq.ZContext;
 import org.zeromq.ZMQ;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
@@ -35,6 +40,35 @@ public class EddnPump extends Thread {
      */
     public static final String RELAY = "tcp://eddn.edcd.io:9500";
 
+    /**
+     * How many recently seen responses are remembered to drop duplicates
+     * delivered by more than one relay.
+     */
+    public static final int DEDUPE_WINDOW = 4096;
+
+    /**
+     * The endpoints the pump connects to. A single socket is connected to
+     * every endpoint, so responses from all of them are fair-queued.
+     */
+    private final List<String> endpoints;
+
+    /**
+     * The socket type used to receive responses. ZMQ.SUB for EDDN relays or
+     * a local PUB fan-out, ZMQ.PULL for a local PUSH fan-out.
+     */
+    private final int sourceType;
+
+    /**
+     * SHA-256 digests of recently seen responses, used to drop duplicates when
+     * more than one endpoint is connected. Only accessed from the pump thread.
+     */
+    private final Map<ByteBuffer, Boolean> recent;
+
+    /**
+     * Digest used to key the recent map. Only accessed from the pump thread.
+     */
+    private final MessageDigest digest;
+
     /**
      * A list of ResponseListeners that should be notified
      * when an EDDN response is received.
@@ -48,9 +82,42 @@ public class EddnPump extends Thread {
     private final AtomicBoolean active = new AtomicBoolean ( true );
 
     /**
-     *
+     * Creates a pump subscribed to the default EDDN relay.
      */
     public EddnPump ( ) {
+        this ( List.of ( RELAY ), ZMQ.SUB );
+    }
+
+    /**
+     * Creates a pump receiving from every endpoint in the provided list.
+     * Throws an IllegalArgumentException if no endpoint is provided or if the
+     * socket type is not supported.
+     *
+     * @param endpoints The endpoints to connect to.
+     * @param sourceType ZMQ.SUB or ZMQ.PULL.
+     */
+    public EddnPump ( final List<String> endpoints, final int sourceType ) throws IllegalArgumentException {
+        if ( endpoints == null || endpoints.isEmpty ( ) ) {
+            throw new IllegalArgumentException ( "At least one endpoint is required." );
+        }
+        if ( sourceType != ZMQ.SUB && sourceType != ZMQ.PULL ) {
+            throw new IllegalArgumentException ( "sourceType must be ZMQ.SUB or ZMQ.PULL." );
+        }
+
+        this.endpoints = List.copyOf ( endpoints );
+        this.sourceType = sourceType;
+        this.recent = new LinkedHashMap<> ( 16, 0.75f, false ) {
+            @Override
+            protected boolean removeEldestEntry ( Map.Entry<ByteBuffer, Boolean> eldest ) {
+                return size ( ) > DEDUPE_WINDOW;
+            }
+        };
+        try {
+            this.digest = MessageDigest.getInstance ( "SHA-256" );
+        } catch ( NoSuchAlgorithmException e ) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException ( "SHA-256 is not available.", e );
+        }
         listeners = Collections.synchronizedList ( new ArrayList<> ( ) );
     }
 
@@ -97,17 +164,36 @@ public class EddnPump extends Thread {
     }
 
     /**
-     * Connects to the EDDN service and polls for events.
+     * Returns true if the response was already received from another endpoint.
+     * Duplicates can only occur when more than one endpoint is connected.
+     */
+    private boolean isDuplicate ( final String response ) {
+        if ( endpoints.size ( ) < 2 ) {
+            return false;
+        }
+
+        byte[] hash = digest.digest ( response.getBytes ( StandardCharsets.UTF_8 ) );
+        return recent.put ( ByteBuffer.wrap ( hash ), Boolean.TRUE ) != null;
+    }
+
+    /**
+     * Connects to the configured endpoints and polls for events.
      * Polled events are then wrapped in an ResponseEvent and
      * ResponseListeners are notified of that event.
      */
     public synchronized void pump ( ) {
         ZContext ctx = new ZContext ( );
-        ZMQ.Socket client = ctx.createSocket ( ZMQ.SUB );
-        client.subscribe ( "".getBytes ( ) );
+        ZMQ.Socket client = ctx.createSocket ( sourceType );
+        if ( sourceType == ZMQ.SUB ) {
+            client.subscribe ( "".getBytes ( ) );
+        }
         client.setReceiveTimeOut ( 30000 );
 
-        client.connect ( RELAY );
+        for ( String endpoint : endpoints ) {
+            client.connect ( endpoint );
+            LOGGER.info ( "Connected to: {}", endpoint );
+        }
+
         ZMQ.Poller poller = ctx.createPoller ( 2 );
         poller.register ( client, ZMQ.Poller.POLLIN );
         byte[] output = new byte[ 256 * 1024 ];
@@ -129,7 +215,7 @@ public class EddnPump extends Thread {
                             String outputString = new String ( output, 0, outlen, StandardCharsets.UTF_8 );
                             // outputString contains a json message
 
-                            if ( outputString.contains ( SCHEMA_KEY ) ) {
+                            if ( outputString.contains ( SCHEMA_KEY ) && !isDuplicate ( outputString ) ) {
                                 LOGGER.info ( "Got response" );
 
                                 synchronized ( listeners ) {
@@ -147,7 +233,11 @@ public class EddnPump extends Thread {
             }
         }
 
-        boolean disconnected = client.disconnect ( RELAY );
-        LOGGER.info ( "Client disconnected status: {}", disconnected  );
+        for ( String endpoint : endpoints ) {
+            boolean disconnected = client.disconnect ( endpoint );
+            LOGGER.info ( "Client disconnected from {} status: {}", endpoint, disconnected  );
+        }
+
+        ctx.close ( );
     }
 }
\ No newline at end of file
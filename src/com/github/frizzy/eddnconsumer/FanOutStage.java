@@ -0,0 +1,197 @@
+package com.github.frizzy.eddnconsumer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.zeromq.ZContext;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQException;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * <p>
+ * Re-publishes responses on a local socket so other EDDNConsumer processes can consume them
+ * with an EddnPump. Responses are compressed the same way EDDN compresses them.
+ * </p>
+ * <br>
+ * <p>
+ * FanOutStage is a sink that runs before every other sink and passes its batch on, so only
+ * responses kept by the decode, filter and transform stages are re-published and the
+ * following sinks still receive them.
+ * </p>
+ *
+ * @author Frizzy
+ * @version HIP 1000
+ * @since HIP 1000
+ */
+public class FanOutStage implements PipelineStage {
+
+    /**
+     * Logger.
+     */
+    private static final Logger LOGGER = LogManager.getLogger ( );
+
+    /**
+     * The local endpoint responses are re-published on.
+     */
+    private final String endpoint;
+
+    /**
+     * The socket type. ZMQ.PUB sends every response to every worker,
+     * ZMQ.PUSH partitions responses between workers.
+     */
+    private final int type;
+
+    /**
+     * The context owning the socket, created in open.
+     */
+    private ZContext ctx;
+
+    /**
+     * The socket responses are sent on, created in open.
+     */
+    private ZMQ.Socket socket;
+
+    /**
+     * Boolean flag determining if the socket is currently dropping responses,
+     * so the warning is only logged when that state changes.
+     */
+    private boolean dropping = false;
+
+    /**
+     * Responses dropped since the socket started dropping.
+     */
+    private long dropped = 0;
+
+    /**
+     * Creates a FanOutStage. Throws an IllegalArgumentException if the endpoint
+     * is missing or the socket type is not supported.
+     *
+     * @param endpoint The local endpoint to bind, e.g. tcp://*:9600.
+     * @param type ZMQ.PUB or ZMQ.PUSH.
+     */
+    public FanOutStage ( final String endpoint, final int type ) throws IllegalArgumentException {
+        if ( endpoint == null || endpoint.isBlank ( ) ) {
+            throw new IllegalArgumentException ( "A fan-out endpoint is required." );
+        }
+        if ( type != ZMQ.PUB && type != ZMQ.PUSH ) {
+            throw new IllegalArgumentException ( "type must be ZMQ.PUB or ZMQ.PUSH." );
+        }
+
+        this.endpoint = endpoint;
+        this.type = type;
+    }
+
+    @Override
+    public Kind getKind ( ) {
+        return Kind.SINK;
+    }
+
+    @Override
+    public String getName ( ) {
+        return "FanOut";
+    }
+
+    /**
+     * Runs before every other sink.
+     */
+    @Override
+    public int getOrder ( ) {
+        return Integer.MIN_VALUE;
+    }
+
+    /**
+     * Workers do not rely on the order of responses, so the stage can follow parallel stages.
+     * The socket is not thread-safe, so the parallelism stays at 1.
+     */
+    @Override
+    public boolean isOrdered ( ) {
+        return false;
+    }
+
+    /**
+     * Binds the socket. The segment thread started afterwards takes the socket over.
+     *
+     * @throws IllegalStateException Thrown if the endpoint could not be bound.
+     */
+    @Override
+    public void open ( ) throws IllegalStateException {
+        ctx = new ZContext ( );
+        socket = ctx.createSocket ( type );
+
+        try {
+            socket.bind ( endpoint );
+        } catch ( ZMQException e ) {
+            ctx.close ( );
+            throw new IllegalStateException ( "Could not bind fan-out endpoint: " + endpoint, e );
+        }
+
+        LOGGER.info ( "Re-publishing responses on: {}", endpoint );
+    }
+
+    /**
+     * Sends every response in the batch and returns the batch unchanged.
+     */
+    @Override
+    public List<ResponseEvent> process ( List<ResponseEvent> batch ) {
+        for ( ResponseEvent re : batch ) {
+            send ( compress ( re.getResponse ( ) ) );
+        }
+
+        return batch;
+    }
+
+    /**
+     * Closes the socket and its context.
+     */
+    @Override
+    public void close ( ) {
+        if ( ctx != null ) {
+            socket.unbind ( endpoint );
+            ctx.close ( );
+        }
+    }
+
+    /**
+     * Sends the frame with NOBLOCK so a slow or missing worker never stalls the pipeline.
+     * A PUSH socket fails the send while no worker is connected or every worker queue is full,
+     * and a warning is logged when that starts and again when it recovers. A PUB socket drops
+     * silently without subscribers or at its high-water mark, so those losses are never reported.
+     */
+    private void send ( final byte[] frame ) {
+        boolean sent = socket.send ( frame, ZMQ.NOBLOCK );
+
+        if ( !sent ) {
+            dropped++;
+            if ( !dropping ) {
+                dropping = true;
+                LOGGER.warn ( "Fan-out started dropping responses. Are any workers connected?" );
+            }
+        } else if ( dropping ) {
+            LOGGER.warn ( "Fan-out recovered after dropping {} responses.", dropped );
+            dropping = false;
+            dropped = 0;
+        }
+    }
+
+    /**
+     * Compresses the response with zlib, the format EddnPump inflates.
+     */
+    private static byte[] compress ( final String response ) {
+        Deflater deflater = new Deflater ( );
+        deflater.setInput ( response.getBytes ( StandardCharsets.UTF_8 ) );
+        deflater.finish ( );
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream ( );
+        byte[] buffer = new byte[ 8 * 1024 ];
+        while ( !deflater.finished ( ) ) {
+            out.write ( buffer, 0, deflater.deflate ( buffer ) );
+        }
+        deflater.end ( );
+
+        return out.toByteArray ( );
+    }
+}
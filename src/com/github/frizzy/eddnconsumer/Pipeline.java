@@ -0,0 +1,495 @@
+package com.github.frizzy.eddnconsumer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.ServiceLoader;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Runs responses received from the EddnPump through a list of PipelineStages.
+ * </p>
+ * <br>
+ * <p>
+ * Adjacent stages with the same batch size, parallelism and ordering are fused into a
+ * segment. Each segment has its own queue and threads, so a queue hop only happens where
+ * the requirements of two stages differ. Every stage is wrapped so the responses in and out,
+ * failed batches and time spent are recorded in its StageMetrics.
+ * </p>
+ * <br>
+ * <p>
+ * An ordered stage runs on a single thread and may not follow a stage that runs on
+ * several threads, since responses would reach it in the order they finished, not the
+ * order they were received.
+ * </p>
+ *
+ * @author Frizzy
+ * @version HIP 1000
+ * @since HIP 1000
+ */
+public class Pipeline implements ResponseListener {
+
+    /**
+     * Logger.
+     */
+    private static final Logger LOGGER = LogManager.getLogger ( );
+
+    /**
+     * The fused segments, in the order responses pass through them.
+     */
+    private final List<Segment> segments;
+
+    /**
+     * The metrics of every stage, in the order the stages are run.
+     */
+    private final List<StageMetrics> metrics;
+
+    /**
+     * Boolean flag determining if the segment threads should run.
+     */
+    private final AtomicBoolean active = new AtomicBoolean ( false );
+
+    /**
+     * Responses queued or being processed in any segment.
+     */
+    private final AtomicLong pending = new AtomicLong ( );
+
+    /**
+     * How long a segment thread waits for a response before checking the active flag.
+     */
+    private static final long POLL_MILLIS = 100;
+
+    /**
+     * How long stop waits for a segment thread to finish its batch before interrupting it.
+     */
+    private static final long JOIN_MILLIS = 5000;
+
+    /**
+     * Creates a Pipeline from the provided stages. The stages are sorted by
+     * kind and order. Throws an IllegalArgumentException if no stage is provided
+     * or if an ordered stage follows a stage running on several threads.
+     */
+    public Pipeline ( final List<PipelineStage> stages ) throws IllegalArgumentException {
+        if ( stages == null || stages.isEmpty ( ) ) {
+            throw new IllegalArgumentException ( "At least one stage is required." );
+        }
+
+        List<PipelineStage> sorted = new ArrayList<> ( stages );
+        sorted.sort ( Comparator.comparing ( PipelineStage::getKind ).thenComparingInt ( PipelineStage::getOrder ) );
+
+        segments = new ArrayList<> ( );
+        metrics = new ArrayList<> ( );
+
+        Segment current = null;
+        PipelineStage parallelStage = null;
+        for ( PipelineStage stage : sorted ) {
+            if ( stage.isOrdered ( ) ) {
+                if ( parallelStage != null ) {
+                    throw new IllegalArgumentException ( "Ordered stage " + stage.getName ( ) +
+                            " cannot follow stage " + parallelStage.getName ( ) + " running on several threads." );
+                }
+                if ( stage.getParallelism ( ) > 1 ) {
+                    LOGGER.warn ( "Stage {} is ordered, its parallelism of {} is reduced to 1.", stage.getName ( ), stage.getParallelism ( ) );
+                }
+            } else if ( stage.getParallelism ( ) > 1 && parallelStage == null ) {
+                parallelStage = stage;
+            }
+
+            StageMetrics stageMetrics = new StageMetrics ( stage.getName ( ) );
+            metrics.add ( stageMetrics );
+
+            if ( current == null || !current.accepts ( stage ) ) {
+                current = new Segment ( stage );
+                segments.add ( current );
+            }
+            current.stages.add ( new InstrumentedStage ( stage, stageMetrics ) );
+        }
+
+        for ( int i = 0; i < segments.size ( ) - 1; i++ ) {
+            segments.get ( i ).next = segments.get ( i + 1 );
+        }
+
+        LOGGER.info ( "Pipeline created with {} stages fused into {} segments.", sorted.size ( ), segments.size ( ) );
+    }
+
+    /**
+     * Returns the stages registered with ServiceLoader.
+     */
+    public static List<PipelineStage> discover ( ) {
+        List<PipelineStage> stages = new ArrayList<> ( );
+
+        for ( PipelineStage stage : ServiceLoader.load ( PipelineStage.class ) ) {
+            LOGGER.info ( "Discovered stage: {} ({})", stage.getName ( ), stage.getKind ( ) );
+            stages.add ( stage );
+        }
+
+        return stages;
+    }
+
+    /**
+     * Opens every stage and starts the segment threads.
+     *
+     * @throws Exception Thrown if a stage could not be opened.
+     */
+    public void start ( ) throws Exception {
+        List<PipelineStage> opened = new ArrayList<> ( );
+
+        for ( Segment segment : segments ) {
+            for ( InstrumentedStage stage : segment.stages ) {
+                try {
+                    stage.stage.open ( );
+                    opened.add ( stage.stage );
+                } catch ( Exception e ) {
+                    LOGGER.error ( "An error occurred opening stage: {}", stage.stage.getName ( ), e );
+                    close ( opened );
+                    throw e;
+                }
+            }
+        }
+
+        active.set ( true );
+        for ( Segment segment : segments ) {
+            segment.start ( );
+        }
+    }
+
+    /**
+     * Stops the segment threads and closes every stage. Each thread is given time to
+     * finish its current batch before it is interrupted, and stages are only closed
+     * once every thread has exited. Responses still queued are dropped, use isIdle
+     * to wait for them first.
+     */
+    public void stop ( ) {
+        active.set ( false );
+
+        for ( Segment segment : segments ) {
+            for ( Thread thread : segment.threads ) {
+                try {
+                    thread.join ( JOIN_MILLIS );
+
+                    if ( thread.isAlive ( ) ) {
+                        LOGGER.warn ( "{} did not finish its batch in time, interrupting.", thread.getName ( ) );
+                        thread.interrupt ( );
+                        thread.join ( JOIN_MILLIS );
+                    }
+                } catch ( InterruptedException e ) {
+                    LOGGER.error ( "Interrupted waiting for {} to exit.", thread.getName ( ), e );
+                    Thread.currentThread ( ).interrupt ( );
+                }
+            }
+        }
+
+        List<PipelineStage> stages = new ArrayList<> ( );
+        for ( Segment segment : segments ) {
+            for ( InstrumentedStage stage : segment.stages ) {
+                stages.add ( stage.stage );
+            }
+        }
+        close ( stages );
+    }
+
+    /**
+     * Closes the provided stages, logging any errors.
+     */
+    private static void close ( final List<PipelineStage> stages ) {
+        for ( PipelineStage stage : stages ) {
+            try {
+                stage.close ( );
+            } catch ( Exception e ) {
+                LOGGER.error ( "An error occurred closing stage: {}", stage.getName ( ), e );
+            }
+        }
+    }
+
+    /**
+     * Queues the response for the first segment.
+     */
+    @Override
+    public void responseReceived ( ResponseEvent re ) {
+        pending.incrementAndGet ( );
+        segments.get ( 0 ).queue.add ( re );
+    }
+
+    /**
+     * Returns true if no response is queued or being processed in any segment.
+     */
+    public boolean isIdle ( ) {
+        return pending.get ( ) == 0;
+    }
+
+    /**
+     * Returns true if no response is queued in any segment.
+     * Note: A segment may still be processing a batch it already took.
+     */
+    public boolean isQueueEmpty ( ) {
+        for ( Segment segment : segments ) {
+            if ( !segment.queue.isEmpty ( ) ) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the metrics of every stage, in the order the stages are run.
+     */
+    public List<StageMetrics> getMetrics ( ) {
+        return Collections.unmodifiableList ( metrics );
+    }
+
+    /**
+     * Counters recorded for a single stage.
+     */
+    public static class StageMetrics {
+
+        /**
+         * The name of the stage.
+         */
+        private final String name;
+
+        /**
+         * Responses passed to the stage.
+         */
+        private final AtomicLong received = new AtomicLong ( );
+
+        /**
+         * Responses returned by the stage.
+         */
+        private final AtomicLong emitted = new AtomicLong ( );
+
+        /**
+         * Batches that threw an exception.
+         */
+        private final AtomicLong failed = new AtomicLong ( );
+
+        /**
+         * Total nanoseconds spent in process.
+         */
+        private final AtomicLong nanos = new AtomicLong ( );
+
+        /**
+         *
+         */
+        private StageMetrics ( final String name ) {
+            this.name = name;
+        }
+
+        /**
+         * Returns the name of the stage.
+         */
+        public String getName ( ) {
+            return name;
+        }
+
+        /**
+         * Returns the number of responses passed to the stage.
+         */
+        public long getReceived ( ) {
+            return received.get ( );
+        }
+
+        /**
+         * Returns the number of responses returned by the stage.
+         */
+        public long getEmitted ( ) {
+            return emitted.get ( );
+        }
+
+        /**
+         * Returns the number of batches that threw an exception.
+         */
+        public long getFailed ( ) {
+            return failed.get ( );
+        }
+
+        /**
+         * Returns the total nanoseconds spent in process.
+         */
+        public long getNanos ( ) {
+            return nanos.get ( );
+        }
+
+        @Override
+        public String toString ( ) {
+            return name + " received: " + received.get ( ) + " emitted: " + emitted.get ( ) +
+                    " failed: " + failed.get ( ) + " time: " + ( nanos.get ( ) / 1_000_000 ) + "ms";
+        }
+    }
+
+    /**
+     * Wraps a stage to record its StageMetrics.
+     */
+    private static class InstrumentedStage {
+
+        /**
+         * The wrapped stage.
+         */
+        private final PipelineStage stage;
+
+        /**
+         * The metrics of the wrapped stage.
+         */
+        private final StageMetrics metrics;
+
+        /**
+         *
+         */
+        private InstrumentedStage ( final PipelineStage stage, final StageMetrics metrics ) {
+            this.stage = stage;
+            this.metrics = metrics;
+        }
+
+        /**
+         * Processes the batch with the wrapped stage. Returns an empty list
+         * if the stage threw an exception or was interrupted.
+         */
+        private List<ResponseEvent> process ( final List<ResponseEvent> batch ) {
+            metrics.received.addAndGet ( batch.size ( ) );
+            long start = System.nanoTime ( );
+
+            try {
+                List<ResponseEvent> out = stage.process ( batch );
+                if ( out == null ) {
+                    out = Collections.emptyList ( );
+                }
+
+                metrics.emitted.addAndGet ( out.size ( ) );
+                return out;
+            } catch ( InterruptedException e ) {
+                LOGGER.warn ( "Stage {} was interrupted, dropping a batch of {} responses.", stage.getName ( ), batch.size ( ) );
+                Thread.currentThread ( ).interrupt ( );
+                return Collections.emptyList ( );
+            } catch ( Throwable e ) {
+                /*
+                 * Throwable so an Error does not silently kill the segment thread
+                 * while responses keep piling up in its queue.
+                 */
+                metrics.failed.incrementAndGet ( );
+                LOGGER.error ( "Stage {} failed to process a batch of {} responses.", stage.getName ( ), batch.size ( ), e );
+                return Collections.emptyList ( );
+            } finally {
+                metrics.nanos.addAndGet ( System.nanoTime ( ) - start );
+            }
+        }
+    }
+
+    /**
+     * A run of fused stages sharing one queue and set of threads.
+     */
+    private class Segment {
+
+        /**
+         * The fused stages.
+         */
+        private final List<InstrumentedStage> stages = new ArrayList<> ( );
+
+        /**
+         * The responses waiting for this segment.
+         */
+        private final LinkedBlockingQueue<ResponseEvent> queue = new LinkedBlockingQueue<> ( );
+
+        /**
+         * The threads running this segment.
+         */
+        private final List<Thread> threads = new ArrayList<> ( );
+
+        /**
+         * The maximum number of responses taken from the queue at once.
+         */
+        private final int batchSize;
+
+        /**
+         * The number of threads running this segment.
+         */
+        private final int parallelism;
+
+        /**
+         * If responses must stay in the order they were received.
+         */
+        private final boolean ordered;
+
+        /**
+         * The segment responses are passed on to, or null for the last segment.
+         */
+        private Segment next;
+
+        /**
+         * Creates a segment with the requirements of the provided stage.
+         */
+        private Segment ( final PipelineStage stage ) {
+            this.batchSize = Math.max ( 1, stage.getBatchSize ( ) );
+            this.ordered = stage.isOrdered ( );
+            this.parallelism = ordered ? 1 : Math.max ( 1, stage.getParallelism ( ) );
+        }
+
+        /**
+         * Returns true if the stage can be fused into this segment.
+         */
+        private boolean accepts ( final PipelineStage stage ) {
+            int stageParallelism = stage.isOrdered ( ) ? 1 : Math.max ( 1, stage.getParallelism ( ) );
+
+            return ordered == stage.isOrdered ( )
+                    && parallelism == stageParallelism
+                    && batchSize == Math.max ( 1, stage.getBatchSize ( ) );
+        }
+
+        /**
+         * Starts the segment threads.
+         */
+        private void start ( ) {
+            String name = stages.get ( 0 ).stage.getName ( );
+
+            for ( int i = 0; i < parallelism; i++ ) {
+                Thread thread = new Thread ( this::run, "Pipeline-" + name + "-" + i );
+                threads.add ( thread );
+                thread.start ( );
+            }
+        }
+
+        /**
+         * Takes batches from the queue and passes them through the fused stages.
+         */
+        private void run ( ) {
+            while ( active.get ( ) && !Thread.currentThread ( ).isInterrupted ( ) ) {
+                List<ResponseEvent> batch = new ArrayList<> ( batchSize );
+
+                try {
+                    ResponseEvent first = queue.poll ( POLL_MILLIS, TimeUnit.MILLISECONDS );
+                    if ( first == null ) {
+                        continue;
+                    }
+                    batch.add ( first );
+                } catch ( InterruptedException e ) {
+                    LOGGER.info ( "{} interrupted, exiting.", Thread.currentThread ( ).getName ( ) );
+                    return;
+                }
+                queue.drainTo ( batch, batchSize - 1 );
+                int taken = batch.size ( );
+
+                for ( InstrumentedStage stage : stages ) {
+                    batch = stage.process ( batch );
+
+                    if ( batch.isEmpty ( ) ) {
+                        break;
+                    }
+                }
+
+                // Count the responses passed on before the taken ones are released, so isIdle never sees 0 in between
+                if ( next != null && !batch.isEmpty ( ) ) {
+                    pending.addAndGet ( batch.size ( ) );
+                    next.queue.addAll ( batch );
+                }
+                pending.addAndGet ( -taken );
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.github.frizzy.eddnconsumer;
+
+import java.util.List;
+
+/**
+ * <p>
+ * A stage of the Pipeline responses received from the EddnPump pass through.
+ * Stages are discovered with ServiceLoader, so a stage can be added by listing it in
+ * META-INF/services/com.github.frizzy.eddnconsumer.PipelineStage.
+ * </p>
+ * <br>
+ * <p>
+ * Stages are ordered by kind and then by order. Adjacent stages with the same batch size,
+ * parallelism and ordering are fused and run on the same thread without a queue between them.
+ * </p>
+ *
+ * @author Frizzy
+ * @version HIP 1000
+ * @since HIP 1000
+ */
+public interface PipelineStage {
+
+    /**
+     * The kind of a stage, in the order stages are run.
+     * The source of a Pipeline is the EddnPump.
+     */
+    enum Kind {
+        DECODE,
+        FILTER,
+        TRANSFORM,
+        SINK
+    }
+
+    /**
+     * Returns the kind of the stage.
+     */
+    Kind getKind ( );
+
+    /**
+     * Processes a batch of responses. The returned list is passed on to the next stage,
+     * so filters return the responses to keep and sinks usually return an empty list.
+     * If getParallelism returns more than 1, the same instance is called from several
+     * threads at once and process must be thread-safe.
+     *
+     * @throws Exception Thrown if the batch could not be processed. The batch is dropped.
+     */
+    List<ResponseEvent> process ( List<ResponseEvent> batch ) throws Exception;
+
+    /**
+     * Returns the name of the stage used in logs and metrics.
+     */
+    default String getName ( ) {
+        String name = getClass ( ).getSimpleName ( );
+        return name.isEmpty ( ) ? getClass ( ).getName ( ) : name; // Anonymous classes have no simple name
+    }
+
+    /**
+     * Returns the order of the stage among stages of the same kind. Lower runs first.
+     */
+    default int getOrder ( ) {
+        return 0;
+    }
+
+    /**
+     * Returns the maximum number of responses passed to process at once.
+     */
+    default int getBatchSize ( ) {
+        return 1;
+    }
+
+    /**
+     * Returns the number of threads the stage may run on. Reduced to 1 with a
+     * warning if the stage is ordered. All threads share this instance, so process
+     * must be thread-safe if this returns more than 1. open and close are still
+     * called once per instance, not once per thread.
+     */
+    default int getParallelism ( ) {
+        return 1;
+    }
+
+    /**
+     * Returns true if responses must reach the stage in the order they were received.
+     * The Pipeline rejects an ordered stage placed after a stage running on several threads.
+     */
+    default boolean isOrdered ( ) {
+        return true;
+    }
+
+    /**
+     * Called once before the first batch is processed.
+     */
+    default void open ( ) throws Exception {
+    }
+
+    /**
+     * Called once after the Pipeline is stopped.
+     */
+    default void close ( ) throws Exception {
+    }
+}